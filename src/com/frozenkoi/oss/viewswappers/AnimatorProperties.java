@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.animation.Animator;
+import android.animation.AnimatorSet;
+import android.animation.ObjectAnimator;
+import android.animation.PropertyValuesHolder;
+import android.util.Property;
+import android.view.View;
+import android.view.animation.LinearInterpolator;
+
+/**
+ * Rebinds {@link ObjectAnimator}s that animate standard {@link View} properties by
+ * name (as inflated from XML) to the precompiled {@link Property} objects of
+ * {@link View}. The name based holders are replaced with ones built by
+ * {@link PropertyValuesHolder#ofFloat(Property, float...)}, the only way to get a
+ * holder that sets and gets through the {@link Property}, so clones of a rebound
+ * animator no longer look setters and getters up by reflection when
+ * {@link Animator#setTarget(Object)} gives them a new target.
+ *
+ * Holders don't expose their values, so they are read back by playing a copy of
+ * the animator on a scratch view, once per template. Only holders that turn out
+ * to go in a straight line from a start to an end value, which is all an
+ * {@code <objectAnimator>} can describe, are rebuilt. Anything else is left
+ * alone and keeps being resolved by name.
+ *
+ * Uses {@link Property}, so only call this on API 14 and up.
+ */
+final class AnimatorProperties {
+
+    private static final HashMap<String, Property<View, Float>> VIEW_PROPERTIES =
+            new HashMap<String, Property<View, Float>>();
+
+    /**
+     * Class of the holders {@link PropertyValuesHolder#ofFloat} makes, which is hidden.
+     */
+    private static final Class<?> FLOAT_HOLDER_CLASS;
+
+    /**
+     * Written to the scratch view before sampling, reading it back as the start
+     * value means the holder has no start value of its own.
+     */
+    private static final float UNSET = -98765.4f;
+
+    static {
+        VIEW_PROPERTIES.put("alpha", View.ALPHA);
+        VIEW_PROPERTIES.put("translationX", View.TRANSLATION_X);
+        VIEW_PROPERTIES.put("translationY", View.TRANSLATION_Y);
+        VIEW_PROPERTIES.put("scaleX", View.SCALE_X);
+        VIEW_PROPERTIES.put("scaleY", View.SCALE_Y);
+        VIEW_PROPERTIES.put("rotation", View.ROTATION);
+        VIEW_PROPERTIES.put("rotationX", View.ROTATION_X);
+        VIEW_PROPERTIES.put("rotationY", View.ROTATION_Y);
+        VIEW_PROPERTIES.put("x", View.X);
+        VIEW_PROPERTIES.put("y", View.Y);
+
+        FLOAT_HOLDER_CLASS = PropertyValuesHolder.ofFloat("alpha", 0f).getClass();
+    }
+
+    private AnimatorProperties() {
+    }
+
+    /**
+     * Rebinds every {@link ObjectAnimator} in the given animator, descending into
+     * {@link AnimatorSet}s.
+     *
+     * @param animator the animator to rebind, may be null
+     * @param scratch a view that isn't attached anywhere, its properties get
+     *            overwritten while the values are read back
+     */
+    static void bindViewProperties(Animator animator, View scratch) {
+        if (animator instanceof AnimatorSet) {
+            final ArrayList<Animator> children = ((AnimatorSet) animator).getChildAnimations();
+            for (int i = 0; i < children.size(); i++) {
+                bindViewProperties(children.get(i), scratch);
+            }
+        } else if (animator instanceof ObjectAnimator) {
+            bindObjectAnimator((ObjectAnimator) animator, scratch);
+        }
+    }
+
+    private static void bindObjectAnimator(ObjectAnimator animator, View scratch) {
+        final PropertyValuesHolder[] values = animator.getValues();
+        if (values == null || animator.getDuration() <= 0) {
+            return;
+        }
+        boolean bindable = false;
+        for (PropertyValuesHolder holder : values) {
+            //the View properties take Floats, intType/colorType values would not survive the cast
+            if (VIEW_PROPERTIES.containsKey(holder.getPropertyName())
+                    && holder.getClass() == FLOAT_HOLDER_CLASS) {
+                bindable = true;
+                break;
+            }
+        }
+        if (!bindable) {
+            return;
+        }
+
+        //a copy that plays linearly, once, without telling anyone
+        final ObjectAnimator sampler = animator.clone();
+        sampler.removeAllListeners();
+        sampler.removeAllUpdateListeners();
+        sampler.setInterpolator(new LinearInterpolator());
+        sampler.setRepeatCount(0);
+        for (Property<View, Float> property : VIEW_PROPERTIES.values()) {
+            property.set(scratch, UNSET);
+        }
+        sampler.setTarget(scratch);
+
+        final long duration = sampler.getDuration();
+        final float[] from = sample(sampler, values, 0);
+        final float[] middle = sample(sampler, values, duration / 2);
+        final float[] to = sample(sampler, values, duration);
+        final float middleFraction = (float) (duration / 2) / duration;
+
+        boolean changed = false;
+        final PropertyValuesHolder[] bound = new PropertyValuesHolder[values.length];
+        for (int i = 0; i < values.length; i++) {
+            final PropertyValuesHolder holder = values[i];
+            bound[i] = holder;
+            final Property<View, Float> property = VIEW_PROPERTIES.get(holder.getPropertyName());
+            if (property == null || holder.getClass() != FLOAT_HOLDER_CLASS
+                    || Float.isNaN(from[i]) || Float.isNaN(to[i])) {
+                continue;
+            }
+            //more keyframes or a keyframe interpolator would be lost by rebuilding from the ends
+            final float linear = from[i] + (to[i] - from[i]) * middleFraction;
+            if (Math.abs(middle[i] - linear) > Math.max(1e-3f, Math.abs(linear) * 1e-5f)) {
+                continue;
+            }
+            if (from[i] == UNSET) {
+                bound[i] = PropertyValuesHolder.ofFloat(property, to[i]);
+            } else {
+                bound[i] = PropertyValuesHolder.ofFloat(property, from[i], to[i]);
+            }
+            changed = true;
+        }
+        if (changed) {
+            animator.setValues(bound);
+        }
+    }
+
+    /**
+     * Seeks the sampler and reads what each holder animated to, NaN for holders
+     * that didn't produce a float.
+     */
+    private static float[] sample(ObjectAnimator sampler, PropertyValuesHolder[] values, long playTime) {
+        sampler.setCurrentPlayTime(playTime);
+        final float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            final Object value = sampler.getAnimatedValue(values[i].getPropertyName());
+            result[i] = value instanceof Float ? (Float) value : Float.NaN;
+        }
+        return result;
+    }
+}
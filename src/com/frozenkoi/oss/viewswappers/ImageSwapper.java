@@ -16,10 +16,23 @@
 
 package com.frozenkoi.oss.viewswappers;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.ImageView;
@@ -27,36 +40,439 @@ import android.widget.ImageView;
 
 public class ImageSwapper extends ViewSwapper
 {
+    private static final String TAG = "ImageSwapper";
+
+    /**
+     * How much smaller than the view the placeholder of a progressive swap is.
+     */
+    private static final int PREVIEW_DIVISOR = 8;
+
+    /**
+     * Sources at least this many times larger than the view (on both axes) are
+     * decoded with a {@link BitmapRegionDecoder}.
+     */
+    private static final int REGION_DECODE_FACTOR = 2;
+
+    boolean mProgressive = false;
+
+    private ProgressiveDecodeTask mDecodeTask;
+
+    /**
+     * A full decode cancelled by a detach, restarted when attached again so the
+     * placeholder doesn't stay on screen.
+     */
+    private ProgressiveDecodeTask mInterruptedDecode;
+
+    /**
+     * What the displayed image was set from, so it can be restored. Drawables
+     * set directly can't be persisted and leave both empty.
+     */
+    private int mImageResource;
+    private Uri mImageUri;
+
     public ImageSwapper(Context context)
     {
         super(context);
     }
-    
+
     public ImageSwapper(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
 
     public void setImageResource(int resid)
     {
+        cancelProgressiveDecode();
         ImageView image = (ImageView)this.getNextView();
         image.setImageResource(resid);
+        mImageResource = resid;
+        mImageUri = null;
         showNext();
     }
 
+    /**
+     * Sets the image of the next view from the given uri and switches to it.
+     * When {@link #setProgressiveDecoding(boolean) progressive decoding} is on,
+     * the next view is cleared and swapped in right away, and the source is only
+     * read off the UI thread: a subsampled placeholder is put in as soon as it's
+     * decoded, then the view size decode replaces it in place, without another
+     * transition. The placeholder reports the intrinsic size of the full decode,
+     * so the view doesn't change size when it's replaced.
+     *
+     * @param uri the uri of the image to display
+     */
     public void setImageURI(Uri uri)
     {
+        cancelProgressiveDecode();
         ImageView image = (ImageView)this.getNextView();
-        image.setImageURI(uri);
+        if (mProgressive && uri != null) {
+            bindProgressive(image, uri);
+        } else {
+            image.setImageURI(uri);
+        }
+        mImageResource = 0;
+        mImageUri = uri;
         showNext();
     }
 
     public void setImageDrawable(Drawable drawable)
     {
+        cancelProgressiveDecode();
         ImageView image = (ImageView)this.getNextView();
         image.setImageDrawable(drawable);
+        mImageResource = 0;
+        mImageUri = null;
         showNext();
     }
 
+    /**
+     * Indicates whether {@link #setImageURI(Uri)} should swap in a low
+     * resolution placeholder first and stream in the full decode afterwards.
+     *
+     * @param progressive True to decode progressively, false to let the
+     *                    {@link ImageView} decode the uri itself.
+     */
+    public void setProgressiveDecoding(boolean progressive)
+    {
+        mProgressive = progressive;
+    }
+
+    /**
+     * Returns whether {@link #setImageURI(Uri)} decodes progressively.
+     *
+     * @see #setProgressiveDecoding(boolean)
+     */
+    public boolean getProgressiveDecoding()
+    {
+        return mProgressive;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mInterruptedDecode != null && mDecodeTask == null) {
+            mDecodeTask = mInterruptedDecode.restart();
+            mInterruptedDecode = null;
+            mDecodeTask.execute();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mInterruptedDecode = mDecodeTask;
+            mDecodeTask = null;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    ViewAnimatorViaProperties.SavedState createSavedState(Parcelable superState)
+    {
+        return new SavedState(superState);
+    }
+
+    @Override
+    void saveContent(ViewAnimatorViaProperties.SavedState ss)
+    {
+        if (ss instanceof SavedState) {
+            ((SavedState) ss).imageResource = mImageResource;
+            ((SavedState) ss).imageUri = mImageUri;
+        }
+    }
+
+    @Override
+    void applyRestoredState(ViewAnimatorViaProperties.SavedState ss)
+    {
+        super.applyRestoredState(ss);
+        if (!(ss instanceof SavedState)) {
+            return;
+        }
+        mImageResource = ((SavedState) ss).imageResource;
+        mImageUri = ((SavedState) ss).imageUri;
+        final ImageView image = (ImageView)getCurrentView();
+        if (mImageUri != null) {
+            cancelProgressiveDecode();
+            if (mProgressive) {
+                bindProgressive(image, mImageUri);
+            } else {
+                image.setImageURI(mImageUri);
+            }
+        } else if (mImageResource != 0) {
+            image.setImageResource(mImageResource);
+        }
+    }
+
+    private void cancelProgressiveDecode()
+    {
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
+        mInterruptedDecode = null;
+    }
+
+    private void bindProgressive(ImageView image, Uri uri)
+    {
+        //whatever the view showed two swaps ago must not show up under the new uri
+        image.setImageDrawable(null);
+
+        int reqWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        int reqHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            //not laid out yet, the screen is the best guess we have
+            reqWidth = metrics.widthPixels;
+            reqHeight = metrics.heightPixels;
+        }
+
+        mDecodeTask = new ProgressiveDecodeTask(image, getContext().getContentResolver(), uri,
+                image.getScaleType(), reqWidth, reqHeight, metrics.densityDpi);
+        mDecodeTask.execute();
+    }
+
+    /**
+     * Returns the largest power of two sample size that still decodes the
+     * source at least as large as the requested size.
+     */
+    static int computeSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight)
+    {
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= reqWidth && srcHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static BitmapFactory.Options decodeBounds(ContentResolver resolver, Uri uri)
+    {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = null;
+        try {
+            in = resolver.openInputStream(uri);
+            BitmapFactory.decodeStream(in, null, options);
+            return options;
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read bounds of " + uri, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options)
+    {
+        InputStream in = null;
+        try {
+            in = resolver.openInputStream(uri);
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to decode " + uri, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static Bitmap decodeRegion(ContentResolver resolver, Uri uri, Rect region, BitmapFactory.Options options)
+    {
+        InputStream in = null;
+        BitmapRegionDecoder decoder = null;
+        try {
+            in = resolver.openInputStream(uri);
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+            return decoder.decodeRegion(region, options);
+        } catch (IOException e) {
+            //format not supported by the region decoder
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(InputStream in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                //nothing we can do about it
+            }
+        }
+    }
+
+    /**
+     * Reads the bounds of an image and decodes its placeholder and then its view
+     * sized version off the UI thread, putting each in the given {@link ImageView}
+     * as it's ready.
+     */
+    private class ProgressiveDecodeTask extends AsyncTask<Void, Bitmap, Bitmap>
+    {
+        private final ImageView mImage;
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final ImageView.ScaleType mScaleType;
+        private final int mReqWidth;
+        private final int mReqHeight;
+        private final int mDensityDpi;
+
+        /**
+         * Set when BitmapFactory can't read the bounds, so the ImageView gets a go.
+         */
+        private boolean mUnsupported;
+
+        ProgressiveDecodeTask(ImageView image, ContentResolver resolver, Uri uri, ImageView.ScaleType scaleType,
+                int reqWidth, int reqHeight, int densityDpi)
+        {
+            mImage = image;
+            mResolver = resolver;
+            mUri = uri;
+            mScaleType = scaleType;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+            mDensityDpi = densityDpi;
+        }
+
+        /**
+         * Returns a new task for the same decode, since an AsyncTask only runs once.
+         */
+        ProgressiveDecodeTask restart()
+        {
+            return new ProgressiveDecodeTask(mImage, mResolver, mUri, mScaleType,
+                    mReqWidth, mReqHeight, mDensityDpi);
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params)
+        {
+            final BitmapFactory.Options bounds = decodeBounds(mResolver, mUri);
+            if (bounds == null || bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                mUnsupported = true;
+                return null;
+            }
+            final int srcWidth = bounds.outWidth;
+            final int srcHeight = bounds.outHeight;
+            final int fullSample = computeSampleSize(srcWidth, srcHeight, mReqWidth, mReqHeight);
+
+            final BitmapFactory.Options preview = new BitmapFactory.Options();
+            preview.inSampleSize = computeSampleSize(srcWidth, srcHeight,
+                    Math.max(1, mReqWidth / PREVIEW_DIVISOR), Math.max(1, mReqHeight / PREVIEW_DIVISOR));
+            if (isCancelled()) {
+                return null;
+            }
+            final Bitmap placeholder = decodeStream(mResolver, mUri, preview);
+            if (placeholder != null) {
+                //report the size the full decode will have, so a wrap_content view
+                //doesn't lay out at 1/8 of it and jump when it lands
+                placeholder.setDensity(mDensityDpi * fullSample / preview.inSampleSize);
+                publishProgress(placeholder);
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            if (mScaleType == ImageView.ScaleType.CENTER_CROP
+                    && srcWidth >= mReqWidth * REGION_DECODE_FACTOR && srcHeight >= mReqHeight * REGION_DECODE_FACTOR) {
+                //only decode what ends up on screen, subsampled straight out of the
+                //region decoder, so the output is bounded by the view rather than by
+                //the source. Any other scale type shows the whole image, for which
+                //the region decoder would only buffer the stream for nothing.
+                final float scale = Math.max((float) mReqWidth / srcWidth, (float) mReqHeight / srcHeight);
+                final int cropWidth = Math.min(srcWidth, Math.round(mReqWidth / scale));
+                final int cropHeight = Math.min(srcHeight, Math.round(mReqHeight / scale));
+                if (cropWidth < srcWidth || cropHeight < srcHeight) {
+                    final Rect region = new Rect();
+                    region.left = (srcWidth - cropWidth) / 2;
+                    region.top = (srcHeight - cropHeight) / 2;
+                    region.right = region.left + cropWidth;
+                    region.bottom = region.top + cropHeight;
+                    options.inSampleSize = computeSampleSize(cropWidth, cropHeight, mReqWidth, mReqHeight);
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    final Bitmap bitmap = decodeRegion(mResolver, mUri, region, options);
+                    if (bitmap != null) {
+                        return bitmap;
+                    }
+                }
+            }
+            options.inSampleSize = fullSample;
+            if (isCancelled()) {
+                return null;
+            }
+            return decodeStream(mResolver, mUri, options);
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... placeholder)
+        {
+            if (mDecodeTask == this) {
+                mImage.setImageBitmap(placeholder[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap)
+        {
+            if (mDecodeTask != this) {
+                return;
+            }
+            mDecodeTask = null;
+            if (bitmap != null) {
+                //same view, same content: no transition, just sharper pixels
+                mImage.setImageBitmap(bitmap);
+            } else if (mUnsupported) {
+                //not something BitmapFactory understands, let the ImageView try
+                mImage.setImageURI(mUri);
+            }
+        }
+    }
+
+    /**
+     * State of an ImageSwapper: adds what the displayed image was set from.
+     */
+    static class SavedState extends ViewAnimatorViaProperties.SavedState
+    {
+        int imageResource;
+        Uri imageUri;
+
+        SavedState(Parcelable superState)
+        {
+            super(superState);
+        }
+
+        private SavedState(Parcel in)
+        {
+            super(in);
+            imageResource = in.readInt();
+            imageUri = in.readParcelable(Uri.class.getClassLoader());
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags)
+        {
+            super.writeToParcel(out, flags);
+            out.writeInt(imageResource);
+            out.writeParcelable(imageUri, flags);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in)
+            {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size)
+            {
+                return new SavedState[size];
+            }
+        };
+    }
+
     @Override
     public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
         super.onInitializeAccessibilityEvent(event);
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Debug helper that keeps an eye on what a {@link ViewAnimatorViaProperties} holds on
+ * to: animator clones that were started and haven't ended yet (including ones
+ * superseded by a later swap), listeners attached to the in and out templates
+ * (and therefore copied into every clone) and children tracked in
+ * {@link ViewAnimatorViaProperties#mCurrentAnimators}. Anything that keeps growing,
+ * or an out of range displayed child index, is logged as a warning.
+ *
+ * Clones are only counted while tracking is enabled, see
+ * {@link ViewAnimatorViaProperties#setRetentionTrackingEnabled(boolean)}.
+ * {@link ViewAnimatorViaProperties#verifyRetention()} runs the same checks and
+ * throws instead of logging, for use from instrumentation tests.
+ */
+public final class RetentionTracker {
+    private static final String TAG = "RetentionTracker";
+
+    private int mLiveAnimators;
+    private int mInListeners;
+    private int mOutListeners;
+    private int mTrackedChildren;
+
+    private int mMaxInListeners;
+    private int mMaxOutListeners;
+    private int mWarnings;
+
+    /**
+     * Counts clones down as they end, cancelled ones included since
+     * {@link Animator#cancel()} also ends them.
+     */
+    private final Animator.AnimatorListener mCloneListener = new AnimatorListenerAdapter() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            animation.removeListener(this);
+            mLiveAnimators--;
+        }
+    };
+
+    RetentionTracker() {
+    }
+
+    /**
+     * Counts a clone that is about to be started, until it ends.
+     */
+    void onCloneStarted(Animator clone) {
+        mLiveAnimators++;
+        clone.addListener(mCloneListener);
+    }
+
+    /**
+     * Takes a fresh count of everything the given animator view retains and
+     * warns about growth.
+     */
+    void check(ViewAnimatorViaProperties owner) {
+        final ArrayList<String> problems = findProblems(owner);
+        for (int i = 0; i < problems.size(); i++) {
+            mWarnings++;
+            Log.w(TAG, owner + ": " + problems.get(i));
+        }
+    }
+
+    /**
+     * Same as {@link #check(ViewAnimatorViaProperties)}, but throws on the first
+     * problem found.
+     *
+     * @throws IllegalStateException describing what is retained or out of range
+     */
+    void verify(ViewAnimatorViaProperties owner) {
+        final ArrayList<String> problems = findProblems(owner);
+        if (!problems.isEmpty()) {
+            mWarnings += problems.size();
+            throw new IllegalStateException(owner + ": " + problems.get(0));
+        }
+    }
+
+    private ArrayList<String> findProblems(ViewAnimatorViaProperties owner) {
+        final ArrayList<String> problems = new ArrayList<String>();
+        final int childCount = owner.getChildCount();
+
+        mTrackedChildren = 0;
+        for (Map.Entry<View, Animator> entry : owner.mCurrentAnimators.entrySet()) {
+            mTrackedChildren++;
+            if (entry.getKey().getParent() != owner) {
+                problems.add("animator retained for a removed child " + entry.getKey());
+            }
+        }
+        if (mTrackedChildren > childCount) {
+            problems.add(mTrackedChildren + " tracked children for " + childCount + " children");
+        }
+        if (mLiveAnimators > childCount) {
+            problems.add(mLiveAnimators + " live animators for " + childCount + " children");
+        }
+
+        mInListeners = countListeners(owner.mInAnimator);
+        if (mMaxInListeners > 0 && mInListeners > mMaxInListeners) {
+            problems.add("in template listeners grew to " + mInListeners);
+        }
+        mMaxInListeners = Math.max(mMaxInListeners, mInListeners);
+
+        mOutListeners = countListeners(owner.mOutAnimator);
+        if (mMaxOutListeners > 0 && mOutListeners > mMaxOutListeners) {
+            problems.add("out template listeners grew to " + mOutListeners);
+        }
+        mMaxOutListeners = Math.max(mMaxOutListeners, mOutListeners);
+
+        final int which = owner.mWhichChild;
+        if (childCount == 0 ? which != 0 : (which < 0 || which >= childCount)) {
+            problems.add("displayed child " + which + " out of range for " + childCount + " children");
+        }
+        return problems;
+    }
+
+    private static int countListeners(Animator template) {
+        if (template == null) {
+            return 0;
+        }
+        final ArrayList<Animator.AnimatorListener> listeners = template.getListeners();
+        return listeners == null ? 0 : listeners.size();
+    }
+
+    /**
+     * Returns the number of clones started while tracking was enabled that have
+     * not ended yet.
+     */
+    public int getLiveAnimatorCount() {
+        return mLiveAnimators;
+    }
+
+    /**
+     * Returns the number of listeners on the in animation template at the last check.
+     */
+    public int getInListenerCount() {
+        return mInListeners;
+    }
+
+    /**
+     * Returns the number of listeners on the out animation template at the last check.
+     */
+    public int getOutListenerCount() {
+        return mOutListeners;
+    }
+
+    /**
+     * Returns the number of children with an animator tracked at the last check.
+     */
+    public int getTrackedChildCount() {
+        return mTrackedChildren;
+    }
+
+    /**
+     * Returns how many problems have been found since tracking started.
+     */
+    public int getWarningCount() {
+        return mWarnings;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import android.os.Build;
+import android.view.Choreographer;
+
+/**
+ * Decides, per swap, whether a {@link ViewAnimatorViaProperties} gets to play its
+ * transition based on how long recent UI frames took. When frames are already
+ * running over budget, swaps are played with a shortened animation or applied
+ * instantly, so the transitions don't add to the jank.
+ *
+ * The controller is global and optional: nothing is consulted until
+ * {@link #install()} is called. From then on it samples every frame while at
+ * least one {@link ViewAnimatorViaProperties} is attached to a visible window,
+ * so each decision reflects the latest frames even for the first swap after a
+ * quiet period, and nothing runs once the swappers are gone or in the
+ * background. Sampling restarts from scratch when they come back, swaps are
+ * animated normally until there are frames to go on. Frame timings come from
+ * {@link Choreographer}, so it needs API 16 and must be used from the UI thread.
+ */
+public final class SwapAdmissionController {
+    /** The swap is animated normally. */
+    public static final int ANIMATE = 0;
+    /** The swap is animated with its durations scaled by the shorten factor. */
+    public static final int SHORTEN = 1;
+    /** The swap is applied without animation. */
+    public static final int INSTANT = 2;
+
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 1000000000L / 60;
+    private static final int FRAME_SAMPLES = 8;
+
+    private static SwapAdmissionController sInstance;
+
+    private final Choreographer mChoreographer;
+    private final FrameSampler mSampler = new FrameSampler();
+
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+    private float mShortenThreshold = 1.5f;
+    private float mInstantThreshold = 2.5f;
+    private float mShortenFactor = 0.5f;
+
+    private final long[] mFrameIntervals = new long[FRAME_SAMPLES];
+    private int mFrameCount;
+    private long mLastFrameTimeNanos;
+    private boolean mMonitoring;
+
+    private int mAnimatedCount;
+    private int mShortenedCount;
+    private int mInstantCount;
+
+    private SwapAdmissionController() {
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Returns the controller. Must be called from the UI thread.
+     *
+     * @throws UnsupportedOperationException below API 16, where there is no
+     *             {@link Choreographer} to time frames with
+     */
+    public static SwapAdmissionController getInstance() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            throw new UnsupportedOperationException(
+                    "SwapAdmissionController needs API 16, running on " + Build.VERSION.SDK_INT);
+        }
+        if (sInstance == null) {
+            sInstance = new SwapAdmissionController();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Makes every {@link ViewAnimatorViaProperties} consult this controller when
+     * {@link ViewAnimatorViaProperties#showNext()},
+     * {@link ViewAnimatorViaProperties#showPrevious()} or
+     * {@link ViewAnimatorViaProperties#setDisplayedChild(int)} switch children,
+     * and samples frames whenever one of them is attached to a visible window.
+     */
+    public void install() {
+        ViewAnimatorViaProperties.sAdmissionController = this;
+        updateSampling();
+    }
+
+    /**
+     * Stops swaps from consulting this controller and stops sampling frames.
+     */
+    public void uninstall() {
+        if (ViewAnimatorViaProperties.sAdmissionController == this) {
+            ViewAnimatorViaProperties.sAdmissionController = null;
+        }
+        updateSampling();
+    }
+
+    /**
+     * Starts or stops sampling frames, depending on whether this controller is
+     * installed and any {@link ViewAnimatorViaProperties} is attached to a
+     * visible window.
+     */
+    void updateSampling() {
+        final boolean sample = ViewAnimatorViaProperties.sAdmissionController == this
+                && ViewAnimatorViaProperties.sVisibleCount > 0;
+        if (sample && !mMonitoring) {
+            //whatever was sampled before is stale by now
+            mFrameCount = 0;
+            mLastFrameTimeNanos = 0;
+            mMonitoring = true;
+            mChoreographer.postFrameCallback(mSampler);
+        } else if (!sample && mMonitoring) {
+            mChoreographer.removeFrameCallback(mSampler);
+            mMonitoring = false;
+        }
+    }
+
+    /**
+     * Decides how the swap about to happen should be played, and counts the
+     * decision.
+     *
+     * @return one of {@link #ANIMATE}, {@link #SHORTEN} or {@link #INSTANT}
+     */
+    int admit() {
+        if (mFrameCount > 0) {
+            final int samples = Math.min(mFrameCount, FRAME_SAMPLES);
+            long total = 0;
+            for (int i = 0; i < samples; i++) {
+                total += mFrameIntervals[i];
+            }
+            final float load = (float) total / samples / mFrameBudgetNanos;
+            if (load >= mInstantThreshold) {
+                mInstantCount++;
+                return INSTANT;
+            }
+            if (load >= mShortenThreshold) {
+                mShortenedCount++;
+                return SHORTEN;
+            }
+        }
+        mAnimatedCount++;
+        return ANIMATE;
+    }
+
+    private final class FrameSampler implements Choreographer.FrameCallback {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameTimeNanos != 0) {
+                mFrameIntervals[mFrameCount % FRAME_SAMPLES] = frameTimeNanos - mLastFrameTimeNanos;
+                mFrameCount++;
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            if (mMonitoring) {
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    /**
+     * Sets the time a frame is expected to take, 1/60s by default.
+     */
+    public void setFrameBudgetNanos(long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Sets the thresholds, in multiples of the frame budget, that the average of
+     * the recent frame intervals has to reach for swaps to be shortened or
+     * applied instantly. Defaults are 1.5 and 2.5.
+     */
+    public void setThresholds(float shortenThreshold, float instantThreshold) {
+        mShortenThreshold = shortenThreshold;
+        mInstantThreshold = instantThreshold;
+    }
+
+    /**
+     * Sets what shortened animations have their durations multiplied by, 0.5 by default.
+     */
+    public void setShortenFactor(float shortenFactor) {
+        mShortenFactor = shortenFactor;
+    }
+
+    /**
+     * Returns what shortened animations have their durations multiplied by.
+     */
+    public float getShortenFactor() {
+        return mShortenFactor;
+    }
+
+    /**
+     * Returns how many swaps were allowed to animate normally.
+     */
+    public int getAnimatedCount() {
+        return mAnimatedCount;
+    }
+
+    /**
+     * Returns how many swaps were played with a shortened animation.
+     */
+    public int getShortenedCount() {
+        return mShortenedCount;
+    }
+
+    /**
+     * Returns how many swaps were applied without animation.
+     */
+    public int getInstantCount() {
+        return mInstantCount;
+    }
+
+    /**
+     * Sets all the decision counters back to zero.
+     */
+    public void resetCounters() {
+        mAnimatedCount = 0;
+        mShortenedCount = 0;
+        mInstantCount = 0;
+    }
+}
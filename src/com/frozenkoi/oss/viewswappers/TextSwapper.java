@@ -18,6 +18,9 @@ package com.frozenkoi.oss.viewswappers;
 
 
 import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 import android.view.ViewGroup;
@@ -92,6 +95,61 @@ public class TextSwapper extends ViewSwapper {
         ((TextView)getCurrentView()).setText(text);
     }
 
+    @Override
+    ViewAnimatorViaProperties.SavedState createSavedState(Parcelable superState) {
+        return new SavedState(superState);
+    }
+
+    @Override
+    void saveContent(ViewAnimatorViaProperties.SavedState ss) {
+        final View current = getCurrentView();
+        if (current != null && ss instanceof SavedState) {
+            ((SavedState) ss).text = ((TextView) current).getText();
+        }
+    }
+
+    @Override
+    void applyRestoredState(ViewAnimatorViaProperties.SavedState ss) {
+        super.applyRestoredState(ss);
+        if (ss instanceof SavedState && ((SavedState) ss).text != null) {
+            setCurrentText(((SavedState) ss).text);
+        }
+    }
+
+    /**
+     * State of a TextSwapper: adds the text of the displayed child.
+     */
+    static class SavedState extends ViewAnimatorViaProperties.SavedState {
+        CharSequence text;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            text = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            TextUtils.writeToParcel(text, out, flags);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
     @Override
     public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
         super.onInitializeAccessibilityEvent(event);
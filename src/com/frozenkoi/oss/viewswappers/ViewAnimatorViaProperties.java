@@ -16,12 +16,17 @@
 
 package com.frozenkoi.oss.viewswappers;
 
+import java.util.ArrayList;
 import java.util.WeakHashMap;
 
 import android.animation.Animator;
 import android.animation.AnimatorInflater;
+import android.animation.AnimatorSet;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -51,6 +56,35 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
 
     protected WeakHashMap<View, Animator> mCurrentAnimators=new WeakHashMap<View, Animator>();
 
+    /**
+     * Set by {@link SwapAdmissionController#install()}, consulted on every swap.
+     */
+    static SwapAdmissionController sAdmissionController;
+
+    /**
+     * How many instances are attached to a visible window, the installed
+     * {@link SwapAdmissionController} only samples frames while there are any.
+     */
+    static int sVisibleCount;
+    private boolean mCountedVisible = false;
+
+    /**
+     * Set while the displayed child is adjusted because children were added or removed.
+     */
+    private boolean mSkipAdmission = false;
+
+    /**
+     * Restored state waiting for the displayed child to be added.
+     */
+    SavedState mPendingState;
+
+    private static boolean sTrackRetention = false;
+    private RetentionTracker mRetentionTracker;
+
+    //one listener per direction, so replacing a template doesn't pile them up on the clones
+    private final Animator.AnimatorListener mInLogListener = new LogListener("swapper  in ");
+    private final Animator.AnimatorListener mOutLogListener = new LogListener("swapper out ");
+
     public ViewAnimatorViaProperties(Context context) {
         super(context);
         initViewAnimator(context, null);
@@ -130,6 +164,22 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
         }
     }
 
+    /**
+     * Sets which child view will be displayed after the children changed, without
+     * consulting the {@link SwapAdmissionController}, since this isn't a swap the
+     * caller asked for.
+     *
+     * @param whichChild the index of the child view to display
+     */
+    void setDisplayedChildInternal(int whichChild) {
+        mSkipAdmission = true;
+        try {
+            setDisplayedChild(whichChild);
+        } finally {
+            mSkipAdmission = false;
+        }
+    }
+
     /**
      * Returns the index of the currently displayed child view.
      */
@@ -164,22 +214,41 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
      *            to true.
      */
     void showOnly(int childIndex, boolean animate) {
+        showOnly(childIndex, animate, 1f);
+    }
+
+    /**
+     * Shows only the specified child, like {@link #showOnly(int, boolean)}, with
+     * the durations of the in and out animations multiplied by the given scale.
+     *
+     * @param childIndex The index of the child to be shown.
+     * @param animate Whether or not to use the in and out animations.
+     * @param durationScale What the animation durations are multiplied by.
+     */
+    void showOnly(int childIndex, boolean animate, float durationScale) {
         final int count = getChildCount();
         for (int i = 0; i < count; i++) {
             final View child = getChildAt(i);
             if (i == childIndex) {
                 if (animate && mInAnimator != null) {
                     //[dk]  //child.startAnimation(mInAnimator);
-                    //TODO: consider canceling previous animation stored in mCurrentAnimators
+                    //a swap back before the last one finished, don't leave it running alongside
+                    endAnimator(child);
                     final Animator inAnimator = mInAnimator.clone();
+                    if (durationScale != 1f) {
+                        scaleDuration(inAnimator, durationScale);
+                    }
                     inAnimator.setTarget(child);
+                    onCloneStarting(inAnimator);
                     inAnimator.start();
                     mCurrentAnimators.put(child, inAnimator);   //keep track of what animator is being used for this view
                 }
                 else if (mInAnimator != null)
                 {
+                    endAnimator(child);
                     final Animator inAnimator = mInAnimator.clone();
                     inAnimator.setTarget(child);
+                    onCloneStarting(inAnimator);
                     inAnimator.start();
                     mCurrentAnimators.put(child, inAnimator);
                     inAnimator.end();//we want the view to jump to final position.
@@ -189,29 +258,108 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
             } else {
                 if (animate && mOutAnimator != null && child.getVisibility() == View.VISIBLE) {
                     //[dk]  //child.startAnimation(mOutAnimator);
-                    final Animator outAnimator = mOutAnimator.clone();
-                    outAnimator.setTarget(child);
-                    outAnimator.start();
-                    mCurrentAnimators.put(child, outAnimator);   //keep track of what animator is being used for this view
-                //} else if (child.getAnimation() == mInAnimator) //TODO: how to find out if the animator is the same as the one running
-                } else if (mCurrentAnimators.get(child) == mInAnimator) //this will fail. Since the child's animator is a clone of mInAnimator
-                    //[dk]  //child.clearAnimation(); //TODO: stop animation. Since this is for tween, don't do it. Check if we need it for property animation
-                child.setVisibility(View.GONE);
+                    animateOut(child, durationScale);
+                } else {
+                    //[dk]  //if (child.getAnimation() == mInAnimator) child.clearAnimation();
+                    //not animating it out, so stop whatever still runs on it and hide it
+                    endAnimator(child);
+                    child.setVisibility(View.GONE);
+                }
             }
         }
+        checkRetention();
+    }
+
+    /**
+     * Starts a clone of the {@link #getOutAnimation() out animation} on the given
+     * child, which is leaving the screen.
+     *
+     * @param child The child to animate out.
+     * @param durationScale What the animation duration is multiplied by.
+     */
+    void animateOut(View child, float durationScale) {
+        endAnimator(child);
+        final Animator outAnimator = mOutAnimator.clone();
+        if (durationScale != 1f) {
+            scaleDuration(outAnimator, durationScale);
+        }
+        outAnimator.setTarget(child);
+        onCloneStarting(outAnimator);
+        outAnimator.start();
+        mCurrentAnimators.put(child, outAnimator);   //keep track of what animator is being used for this view
     }
+
+    /**
+     * Multiplies the duration and start delay of the given animator by the
+     * given scale, descending into {@link AnimatorSet}s that don't set their
+     * own duration.
+     */
+    static void scaleDuration(Animator animator, float scale) {
+        animator.setStartDelay((long) (animator.getStartDelay() * scale));
+        if (animator instanceof AnimatorSet && animator.getDuration() < 0) {
+            final ArrayList<Animator> children = ((AnimatorSet) animator).getChildAnimations();
+            for (int i = 0; i < children.size(); i++) {
+                scaleDuration(children.get(i), scale);
+            }
+        } else if (animator.getDuration() >= 0) {
+            animator.setDuration((long) (animator.getDuration() * scale));
+        }
+    }
+
     /**
      * Shows only the specified child. The other displays Views exit the screen
      * with the {@link #getOutAnimation() out animation} and the specified child
      * enters the screen with the {@link #getInAnimation() in animation}.
+     * If a {@link SwapAdmissionController} is installed, it decides whether the
+     * animations are played normally, shortened or skipped.
      *
      * @param childIndex The index of the child to be shown.
      */
     void showOnly(int childIndex) {
         final boolean animate = (!mFirstTime || mAnimateFirstTime);
+        if (animate && sAdmissionController != null && !mSkipAdmission) {
+            switch (sAdmissionController.admit()) {
+                case SwapAdmissionController.INSTANT:
+                    showOnly(childIndex, false);
+                    return;
+                case SwapAdmissionController.SHORTEN:
+                    showOnly(childIndex, true, sAdmissionController.getShortenFactor());
+                    return;
+            }
+        }
         showOnly(childIndex, animate);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        setCountedVisible(getWindowVisibility() == VISIBLE);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        setCountedVisible(false);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        //a stopped activity keeps its views attached, but hides its window
+        setCountedVisible(visibility == VISIBLE && getWindowToken() != null);
+    }
+
+    private void setCountedVisible(boolean visible) {
+        if (visible == mCountedVisible) {
+            return;
+        }
+        mCountedVisible = visible;
+        sVisibleCount += visible ? 1 : -1;
+        if (sAdmissionController != null) {
+            sAdmissionController.updateSampling();
+        }
+    }
+
     @Override
     public void addView(View child, int index, ViewGroup.LayoutParams params) {
         super.addView(child, index, params);
@@ -220,17 +368,32 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
         } else {
             child.setVisibility(View.GONE);
         }
-        if (index >= 0 && mWhichChild >= index) {
+        if (mPendingState != null) {
+            if (mWhichChild < getChildCount()) {
+                final SavedState ss = mPendingState;
+                mPendingState = null;
+                applyRestoredState(ss);
+            }
+        } else if (index >= 0 && mWhichChild >= index) {
             // Added item above current one, increment the index of the displayed child
-            setDisplayedChild(mWhichChild + 1);
+            setDisplayedChildInternal(mWhichChild + 1);
         }
     }
 
     @Override
     public void removeAllViews() {
+        for (Animator running : mCurrentAnimators.values()) {
+            if (running != null) {
+                running.end();
+            }
+        }
         super.removeAllViews();
+        //the animators reference their target, so the weak keys would never be cleared
+        mCurrentAnimators.clear();
+        mPendingState = null;
         mWhichChild = 0;
         mFirstTime = true;
+        checkRetention();
     }
 
     @Override
@@ -243,6 +406,7 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
 
     @Override
     public void removeViewAt(int index) {
+        endAnimator(getChildAt(index));
         super.removeViewAt(index);
         final int childCount = getChildCount();
         if (childCount == 0) {
@@ -250,11 +414,12 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
             mFirstTime = true;
         } else if (mWhichChild >= childCount) {
             // Displayed is above child count, so float down to top of stack
-            setDisplayedChild(childCount - 1);
+            setDisplayedChildInternal(childCount - 1);
         } else if (mWhichChild == index) {
             // Displayed was removed, so show the new child living in its place
-            setDisplayedChild(mWhichChild);
+            setDisplayedChildInternal(mWhichChild);
         }
+        checkRetention();
     }
 
     public void removeViewInLayout(View view) {
@@ -262,20 +427,37 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
     }
 
     public void removeViews(int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            endAnimator(getChildAt(i));
+        }
         super.removeViews(start, count);
         if (getChildCount() == 0) {
             mWhichChild = 0;
             mFirstTime = true;
         } else if (mWhichChild >= start && mWhichChild < start + count) {
             // Try showing new displayed child, wrapping if needed
-            setDisplayedChild(mWhichChild);
+            setDisplayedChildInternal(mWhichChild);
         }
+        checkRetention();
     }
 
     public void removeViewsInLayout(int start, int count) {
         removeViews(start, count);
     }
 
+    /**
+     * Ends and stops tracking the animator running on the given child, if any.
+     * Used before a child gets a new animator, which would otherwise run
+     * alongside the old one, and before a child is removed, which the old one
+     * would keep animating and holding on to until it finished.
+     */
+    void endAnimator(View child) {
+        final Animator running = mCurrentAnimators.remove(child);
+        if (running != null) {
+            running.end();
+        }
+    }
+
     /**
      * Returns the View corresponding to the currently displayed child.
      *
@@ -308,25 +490,16 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
      * @see #setInAnimation(android.content.Context, int)
      */
     public void setInAnimation(Animator inAnimation) {
+        if (mInAnimator != null) {
+            mInAnimator.removeListener(mInLogListener);
+        }
         mInAnimator = inAnimation;
-        mInAnimator.addListener(new Animator.AnimatorListener() {
-            @Override
-            public void onAnimationStart(Animator animation) {
-                Log.v(TAG, "swapper  in start "+animation);
-            }
-            @Override
-            public void onAnimationRepeat(Animator animation) {
-                Log.v(TAG, "swapper  in repeat "+animation);
-            }
-            @Override
-            public void onAnimationEnd(Animator animation) {
-                Log.v(TAG, "swapper  in end "+animation);
-            }
-            @Override
-            public void onAnimationCancel(Animator animation) {
-                Log.v(TAG, "swapper  in cancel "+animation);
-            }
-        });
+        bindViewProperties(mInAnimator);
+        final ArrayList<Animator.AnimatorListener> listeners = mInAnimator.getListeners();
+        if (listeners == null || !listeners.contains(mInLogListener)) {
+            mInAnimator.addListener(mInLogListener);
+        }
+        checkRetention();
     }
 
     /**
@@ -350,25 +523,55 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
      * @see #setOutAnimation(android.content.Context, int)
      */
     public void setOutAnimation(Animator outAnimator) {
+        if (mOutAnimator != null) {
+            mOutAnimator.removeListener(mOutLogListener);
+        }
         mOutAnimator = outAnimator;
-        mOutAnimator.addListener(new Animator.AnimatorListener() {
-            @Override
-            public void onAnimationStart(Animator animation) {
-                Log.v(TAG, "swapper out start "+animation);
-            }
-            @Override
-            public void onAnimationRepeat(Animator animation) {
-                Log.v(TAG, "swapper out repeat "+animation);
-            }
-            @Override
-            public void onAnimationEnd(Animator animation) {
-                Log.v(TAG, "swapper out end "+animation);
-            }
-            @Override
-            public void onAnimationCancel(Animator animation) {
-                Log.v(TAG, "swapper out cancel "+animation);
-            }
-        });
+        bindViewProperties(mOutAnimator);
+        final ArrayList<Animator.AnimatorListener> listeners = mOutAnimator.getListeners();
+        if (listeners == null || !listeners.contains(mOutLogListener)) {
+            mOutAnimator.addListener(mOutLogListener);
+        }
+        checkRetention();
+    }
+
+    /**
+     * Logs the lifecycle of the animators cloned from a template.
+     */
+    private final class LogListener implements Animator.AnimatorListener {
+        private final String mPrefix;
+
+        LogListener(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public void onAnimationStart(Animator animation) {
+            Log.v(TAG, mPrefix + "start " + animation);
+        }
+        @Override
+        public void onAnimationRepeat(Animator animation) {
+            Log.v(TAG, mPrefix + "repeat " + animation);
+        }
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            Log.v(TAG, mPrefix + "end " + animation);
+        }
+        @Override
+        public void onAnimationCancel(Animator animation) {
+            Log.v(TAG, mPrefix + "cancel " + animation);
+        }
+    }
+
+    /**
+     * Points the standard view properties animated by the given template at
+     * their {@link android.util.Property} objects, so the clones made for every
+     * swap don't go through reflection when they get a new target.
+     */
+    private void bindViewProperties(Animator animator) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            AnimatorProperties.bindViewProperties(animator, new View(getContext()));
+        }
     }
 
     /**
@@ -425,6 +628,195 @@ public class ViewAnimatorViaProperties extends android.widget.FrameLayout {
         mAnimateFirstTime = animate;
     }
 
+    /**
+     * Enables or disables retention tracking for every ViewAnimatorViaProperties.
+     * While enabled, each one counts the animators, template listeners and
+     * children it retains after every change and logs a warning when they grow.
+     * Meant for debug builds only.
+     *
+     * @param enabled True to track retention, false otherwise.
+     *
+     * @see #getRetentionTracker()
+     */
+    public static void setRetentionTrackingEnabled(boolean enabled) {
+        sTrackRetention = enabled;
+    }
+
+    /**
+     * Returns the retention counts of this view.
+     *
+     * @return The tracker, or null if this view hasn't changed while tracking
+     * was enabled and {@link #verifyRetention()} was never called.
+     *
+     * @see #setRetentionTrackingEnabled(boolean)
+     */
+    public RetentionTracker getRetentionTracker() {
+        return mRetentionTracker;
+    }
+
+    /**
+     * Checks that this view only retains what it needs right now: no animators
+     * for removed children, no more running clones or tracked children than
+     * children, no growing template listeners and a displayed child in range.
+     * Running clones are only counted while
+     * {@link #setRetentionTrackingEnabled(boolean) tracking} is enabled.
+     * Meant to be called from instrumentation tests after each step.
+     *
+     * @throws IllegalStateException if any of these doesn't hold
+     */
+    public void verifyRetention() {
+        obtainRetentionTracker().verify(this);
+    }
+
+    void checkRetention() {
+        if (sTrackRetention) {
+            obtainRetentionTracker().check(this);
+        }
+    }
+
+    /**
+     * Lets the tracker count a clone of a template that is about to be started.
+     */
+    void onCloneStarting(Animator clone) {
+        if (sTrackRetention) {
+            obtainRetentionTracker().onCloneStarted(clone);
+        }
+    }
+
+    private RetentionTracker obtainRetentionTracker() {
+        if (mRetentionTracker == null) {
+            mRetentionTracker = new RetentionTracker();
+        }
+        return mRetentionTracker;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        final SavedState ss = createSavedState(super.onSaveInstanceState());
+        ss.whichChild = mWhichChild;
+        ss.firstTime = mFirstTime;
+        saveContent(ss);
+        return ss;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        final SavedState ss = (SavedState) state;
+        super.onRestoreInstanceState(ss.getSuperState());
+        mWhichChild = ss.whichChild;
+        mFirstTime = ss.firstTime;
+        if (mWhichChild < getChildCount()) {
+            applyRestoredState(ss);
+        } else {
+            // Children not created yet, finish once the displayed one is added
+            mPendingState = ss;
+        }
+    }
+
+    /**
+     * Creates the state saved by {@link #onSaveInstanceState()}. Subclasses that
+     * save content return their own {@link SavedState} subclass.
+     *
+     * @param superState The state of the superclass.
+     */
+    SavedState createSavedState(Parcelable superState) {
+        return new SavedState(superState);
+    }
+
+    /**
+     * Stores what the displayed child shows, for subclasses that know. Does
+     * nothing by default.
+     *
+     * @param ss The state being saved, as created by {@link #createSavedState(Parcelable)}.
+     */
+    void saveContent(SavedState ss) {
+    }
+
+    /**
+     * Puts the restored displayed child on screen in its final state. Transitions
+     * already started before the restore (typically by content set again in
+     * onCreate) are ended, so the first frame after a restore already shows it.
+     * Subclasses put the saved content back into the displayed child here.
+     *
+     * @param ss The state being restored.
+     */
+    void applyRestoredState(SavedState ss) {
+        boolean wasAnimating = false;
+        for (Animator animator : mCurrentAnimators.values()) {
+            //finished ones are never dropped from the map, they don't count
+            if (animator != null && isUnfinished(animator)) {
+                animator.end();
+                wasAnimating = true;
+            }
+        }
+        mCurrentAnimators.clear();
+        if (wasAnimating) {
+            // The displayed child may have been left in an out animation's end
+            // state, jump it to the in animation's instead
+            showOnly(mWhichChild, false);
+            mFirstTime = ss.firstTime;
+        } else {
+            final int count = getChildCount();
+            for (int i = 0; i < count; i++) {
+                getChildAt(i).setVisibility(i == mWhichChild ? View.VISIBLE : View.GONE);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the animator is playing, or on API 14 and up, still
+     * waiting out its start delay.
+     */
+    private static boolean isUnfinished(Animator animator) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return animator.isStarted();
+        }
+        return animator.isRunning();
+    }
+
+    /**
+     * State of a {@link ViewAnimatorViaProperties}: the displayed child and
+     * whether the first time animation already played. Subclasses extend it
+     * with what their displayed child shows.
+     */
+    static class SavedState extends BaseSavedState {
+        int whichChild;
+        boolean firstTime;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        SavedState(Parcel in) {
+            super(in);
+            whichChild = in.readInt();
+            firstTime = in.readInt() != 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(whichChild);
+            out.writeInt(firstTime ? 1 : 0);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
     @Override
     public int getBaseline() {
         return (getCurrentView() != null) ? getCurrentView().getBaseline() : super.getBaseline();
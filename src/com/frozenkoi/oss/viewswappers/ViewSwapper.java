@@ -17,7 +17,12 @@
 package com.frozenkoi.oss.viewswappers;
 
 import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,6 +41,35 @@ public class ViewSwapper extends ViewAnimatorViaProperties {
      */
     ViewFactory mFactory;
 
+    boolean mSnapshotOut = false;
+
+    /**
+     * Stands in for the outgoing child while its snapshot animates out. Never
+     * added to the hierarchy, it only carries the animated properties.
+     */
+    private View mSnapshotProxy;
+    private Bitmap mSnapshotBitmap;
+    private final Canvas mSnapshotCanvas = new Canvas();
+    private final Paint mSnapshotPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Animator mSnapshotAnimator;
+
+    /**
+     * Index of the child the snapshot was taken from, so it's drawn at the same z
+     * position, and whether it was drawn yet in the current pass.
+     */
+    private int mSnapshotIndex;
+    private boolean mSnapshotDrawn;
+
+    private final Animator.AnimatorListener mSnapshotEndListener = new AnimatorListenerAdapter() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            if (animation == mSnapshotAnimator) {
+                mSnapshotAnimator = null;
+                invalidate();
+            }
+        }
+    };
+
     /**
      * Creates a new empty ViewSwapper.
      *
@@ -69,6 +103,39 @@ public class ViewSwapper extends ViewAnimatorViaProperties {
         super.addView(child, index, params);
     }
 
+    @Override
+    public void removeAllViews() {
+        endSnapshot();
+        super.removeAllViews();
+    }
+
+    @Override
+    public void removeViewAt(int index) {
+        onRemovingChildren(index, 1);
+        super.removeViewAt(index);
+    }
+
+    @Override
+    public void removeViews(int start, int count) {
+        onRemovingChildren(start, count);
+        super.removeViews(start, count);
+    }
+
+    /**
+     * Ends the snapshot if the child it was taken from is being removed, and
+     * keeps its z position in step with the children that remain otherwise.
+     */
+    private void onRemovingChildren(int start, int count) {
+        if (mSnapshotAnimator == null) {
+            return;
+        }
+        if (mSnapshotIndex >= start + count) {
+            mSnapshotIndex -= count;
+        } else if (mSnapshotIndex >= start) {
+            endSnapshot();
+        }
+    }
+
     @Override
     public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
         super.onInitializeAccessibilityEvent(event);
@@ -115,12 +182,163 @@ public class ViewSwapper extends ViewAnimatorViaProperties {
         obtainView();
     }
 
+    /**
+     * Indicates whether the outgoing child should be captured into a snapshot
+     * that plays the out animation in its place. The child itself is hidden
+     * right away, so {@link #getNextView()} can receive new content while the
+     * previous content is still animating out. The snapshot is drawn at the
+     * outgoing child's z position, so it covers or sits under the incoming
+     * child just like the child itself would.
+     *
+     * @param snapshot True to animate a snapshot of the outgoing child, false to
+     *                 animate the child itself.
+     */
+    public void setSnapshotOutTransition(boolean snapshot) {
+        mSnapshotOut = snapshot;
+        if (!snapshot) {
+            endSnapshot();
+            mSnapshotBitmap = null;
+        }
+    }
+
+    /**
+     * Returns whether the out animation is played on a snapshot of the outgoing child.
+     *
+     * @see #setSnapshotOutTransition(boolean)
+     */
+    public boolean getSnapshotOutTransition() {
+        return mSnapshotOut;
+    }
+
+    @Override
+    void showOnly(int childIndex, boolean animate, float durationScale) {
+        if (!animate) {
+            //the outgoing content is meant to be gone at once, snapshot included
+            endSnapshot();
+        }
+        super.showOnly(childIndex, animate, durationScale);
+    }
+
+    @Override
+    void animateOut(View child, float durationScale) {
+        final int width = child.getWidth();
+        final int height = child.getHeight();
+        if (!mSnapshotOut || width <= 0 || height <= 0) {
+            super.animateOut(child, durationScale);
+            return;
+        }
+        endSnapshot();
+
+        if (mSnapshotProxy == null) {
+            mSnapshotProxy = new View(getContext());
+        }
+        final View proxy = mSnapshotProxy;
+        proxy.layout(child.getLeft(), child.getTop(), child.getRight(), child.getBottom());
+        proxy.setAlpha(child.getAlpha());
+        proxy.setTranslationX(child.getTranslationX());
+        proxy.setTranslationY(child.getTranslationY());
+        proxy.setScaleX(child.getScaleX());
+        proxy.setScaleY(child.getScaleY());
+        proxy.setRotation(child.getRotation());
+        proxy.setRotationX(child.getRotationX());
+        proxy.setRotationY(child.getRotationY());
+        proxy.setPivotX(child.getPivotX());
+        proxy.setPivotY(child.getPivotY());
+
+        //the child is free as soon as its content is captured
+        endAnimator(child);
+        if (mSnapshotBitmap == null || mSnapshotBitmap.getWidth() != width
+                || mSnapshotBitmap.getHeight() != height) {
+            mSnapshotBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            mSnapshotBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        mSnapshotCanvas.setBitmap(mSnapshotBitmap);
+        mSnapshotCanvas.save();
+        mSnapshotCanvas.translate(-child.getScrollX(), -child.getScrollY());
+        child.draw(mSnapshotCanvas);
+        mSnapshotCanvas.restore();
+        mSnapshotCanvas.setBitmap(null);
+        mSnapshotIndex = indexOfChild(child);
+        child.setVisibility(View.GONE);
+
+        final Animator outAnimator = mOutAnimator.clone();
+        if (durationScale != 1f) {
+            scaleDuration(outAnimator, durationScale);
+        }
+        outAnimator.setTarget(proxy);
+        outAnimator.addListener(mSnapshotEndListener);
+        mSnapshotAnimator = outAnimator;
+        onCloneStarting(outAnimator);
+        outAnimator.start();
+        invalidate();
+    }
+
+    /**
+     * Jumps a running snapshot out animation to its end, which stops drawing it.
+     */
+    private void endSnapshot() {
+        if (mSnapshotAnimator != null) {
+            mSnapshotAnimator.end();
+            mSnapshotAnimator = null;
+            invalidate();
+        }
+    }
+
+    @Override
+    void applyRestoredState(ViewAnimatorViaProperties.SavedState ss) {
+        endSnapshot();
+        super.applyRestoredState(ss);
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        mSnapshotDrawn = false;
+        super.dispatchDraw(canvas);
+        if (mSnapshotAnimator != null) {
+            if (!mSnapshotDrawn) {
+                //the outgoing child was on top
+                drawSnapshot(canvas);
+            }
+            //the proxy isn't attached, so nothing else asks for the next frame
+            invalidate();
+        }
+    }
+
+    @Override
+    protected boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        if (mSnapshotAnimator != null && !mSnapshotDrawn && indexOfChild(child) > mSnapshotIndex) {
+            //the outgoing child was below this one
+            drawSnapshot(canvas);
+        }
+        return super.drawChild(canvas, child, drawingTime);
+    }
+
+    private void drawSnapshot(Canvas canvas) {
+        mSnapshotDrawn = true;
+        final View proxy = mSnapshotProxy;
+        canvas.save();
+        canvas.translate(proxy.getLeft(), proxy.getTop());
+        canvas.concat(proxy.getMatrix());
+        mSnapshotPaint.setAlpha((int) (proxy.getAlpha() * 255));
+        canvas.drawBitmap(mSnapshotBitmap, 0, 0, mSnapshotPaint);
+        canvas.restore();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        endSnapshot();
+        mSnapshotBitmap = null;
+        super.onDetachedFromWindow();
+    }
+
     /**
      * Reset the ViewSwapper to hide all of the existing views and to make it
      * think that the first time animation has not yet played.
      */
     public void reset() {
         mFirstTime = true;
+        endSnapshot();
         View v;
         v = getChildAt(0);
         if (v != null) {
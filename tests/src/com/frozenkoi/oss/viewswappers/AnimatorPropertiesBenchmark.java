@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import android.animation.Animator;
+import android.animation.AnimatorSet;
+import android.animation.ObjectAnimator;
+import android.animation.PropertyValuesHolder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Compares what a swap costs with animators that resolve view properties by name
+ * against the same animators after {@link AnimatorProperties} rebound them: every
+ * iteration clones the template, gives the clone a new target and seeks it, which
+ * is what {@link ViewAnimatorViaProperties#showOnly(int, boolean)} does minus the
+ * frame callbacks. Timings are logged under {@link #TAG}, run with
+ * {@code adb logcat -s AnimatorPropertiesBenchmark} to see them.
+ */
+public class AnimatorPropertiesBenchmark extends AndroidTestCase {
+    private static final String TAG = "AnimatorPropertiesBenchmark";
+
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+    private static final int TARGETS = 8;
+    private static final float EPSILON = 1e-4f;
+
+    private View[] mTargets;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTargets = new View[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            mTargets[i] = new View(getContext());
+        }
+    }
+
+    /**
+     * Builds what inflating an {@code <objectAnimator>} per property inside a
+     * {@code <set>} gives: name based holders, one of them without a start value.
+     */
+    private static Animator createTemplate() {
+        final AnimatorSet set = new AnimatorSet();
+        final ObjectAnimator fade = ObjectAnimator.ofPropertyValuesHolder((Object) null,
+                PropertyValuesHolder.ofFloat("alpha", 0f, 1f));
+        final ObjectAnimator slide = ObjectAnimator.ofPropertyValuesHolder((Object) null,
+                PropertyValuesHolder.ofFloat("translationX", 120f, 0f),
+                PropertyValuesHolder.ofFloat("scaleX", 1.5f));
+        fade.setDuration(300);
+        slide.setDuration(300);
+        set.playTogether(fade, slide);
+        return set;
+    }
+
+    private Animator createBoundTemplate() {
+        final Animator template = createTemplate();
+        AnimatorProperties.bindViewProperties(template, new View(getContext()));
+        return template;
+    }
+
+    public void testBindingReplacesHolders() {
+        final Animator template = createTemplate();
+        final ObjectAnimator slide = (ObjectAnimator) ((AnimatorSet) template).getChildAnimations().get(1);
+        final PropertyValuesHolder[] before = slide.getValues();
+        AnimatorProperties.bindViewProperties(template, new View(getContext()));
+        final PropertyValuesHolder[] after = slide.getValues();
+        assertEquals(before.length, after.length);
+        for (int i = 0; i < before.length; i++) {
+            assertNotSame(before[i], after[i]);
+            assertEquals(before[i].getPropertyName(), after[i].getPropertyName());
+        }
+    }
+
+    public void testBindingKeepsEndValues() {
+        final View target = mTargets[0];
+        target.setScaleX(0.5f);
+        seekToEnd(createBoundTemplate(), target);
+        assertEquals(1f, target.getAlpha(), EPSILON);
+        assertEquals(0f, target.getTranslationX(), EPSILON);
+        assertEquals(1.5f, target.getScaleX(), EPSILON);
+    }
+
+    public void testBindingKeepsStartValues() {
+        final View target = mTargets[0];
+        target.setScaleX(0.5f);
+        final Animator clone = createBoundTemplate().clone();
+        clone.setTarget(target);
+        for (Animator child : ((AnimatorSet) clone).getChildAnimations()) {
+            ((ObjectAnimator) child).setCurrentPlayTime(0);
+        }
+        assertEquals(0f, target.getAlpha(), EPSILON);
+        assertEquals(120f, target.getTranslationX(), EPSILON);
+        //no start value, so it starts from where the target was
+        assertEquals(0.5f, target.getScaleX(), EPSILON);
+    }
+
+    public void testBindingSkipsUnboundProperties() {
+        final ObjectAnimator custom = ObjectAnimator.ofPropertyValuesHolder((Object) null,
+                PropertyValuesHolder.ofFloat("alpha", 0f, 1f, 0f),
+                PropertyValuesHolder.ofInt("scrollX", 0, 10),
+                PropertyValuesHolder.ofFloat("translationY", 0f, 40f));
+        custom.setDuration(300);
+        final PropertyValuesHolder[] before = custom.getValues();
+        AnimatorProperties.bindViewProperties(custom, new View(getContext()));
+        final PropertyValuesHolder[] after = custom.getValues();
+        //rebuilding from the ends would lose the middle keyframe
+        assertSame(before[0], after[0]);
+        assertSame(before[1], after[1]);
+        assertNotSame(before[2], after[2]);
+    }
+
+    public void testSwapCost() {
+        final Animator byName = createTemplate();
+        final Animator bound = createBoundTemplate();
+
+        runSwaps(byName, WARMUP);
+        runSwaps(bound, WARMUP);
+
+        final long byNameNanos = runSwaps(byName, ITERATIONS);
+        final long boundNanos = runSwaps(bound, ITERATIONS);
+        Log.i(TAG, String.format("by name: %d ns/swap, bound: %d ns/swap, %.2fx",
+                byNameNanos / ITERATIONS, boundNanos / ITERATIONS,
+                (double) byNameNanos / boundNanos));
+
+        //the exact ratio depends on the device, the runtime and whether it is idle
+        assertTrue("bound swaps took " + boundNanos + "ns against " + byNameNanos + "ns by name",
+                boundNanos < byNameNanos * 2);
+    }
+
+    private long runSwaps(Animator template, int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            seekToEnd(template, mTargets[i % TARGETS]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void seekToEnd(Animator template, View target) {
+        final Animator clone = template.clone();
+        clone.setTarget(target);
+        for (Animator child : ((AnimatorSet) clone).getChildAnimations()) {
+            ((ObjectAnimator) child).setCurrentPlayTime(child.getDuration());
+        }
+    }
+}
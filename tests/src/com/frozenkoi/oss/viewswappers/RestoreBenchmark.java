@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import android.animation.Animator;
+import android.animation.AnimatorSet;
+import android.animation.ObjectAnimator;
+import android.content.Context;
+import android.os.Parcelable;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Measures how long {@link ViewAnimatorViaProperties#onRestoreInstanceState(Parcelable)}
+ * takes on a {@link ViewSwapper} whose content was set again before the restore,
+ * the way an activity recreated after a configuration change does it: once with
+ * the swaps that content caused still animating, once with them all finished.
+ * Timings are logged under {@link #TAG}, run with
+ * {@code adb logcat -s RestoreBenchmark} to see them.
+ */
+public class RestoreBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "RestoreBenchmark";
+
+    private static final int ITERATIONS = 200;
+    private static final long DURATION = 300;
+    private static final float EPSILON = 1e-4f;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+    }
+
+    private ViewSwapper createSwapper() {
+        final AnimatorSet in = new AnimatorSet();
+        in.playTogether(ObjectAnimator.ofFloat(null, "alpha", 0f, 1f),
+                ObjectAnimator.ofFloat(null, "translationX", 80f, 0f));
+        in.setDuration(DURATION);
+        final Animator out = ObjectAnimator.ofFloat(null, "alpha", 1f, 0f).setDuration(DURATION);
+
+        final ViewSwapper swapper = new ViewSwapper(mContext);
+        swapper.setInAnimation(in);
+        swapper.setOutAnimation(out);
+        swapper.addView(new View(mContext));
+        swapper.addView(new View(mContext));
+        return swapper;
+    }
+
+    public void testRestoreCost() throws Throwable {
+        final Throwable[] failure = new Throwable[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    measureRestores();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void measureRestores() {
+        final ViewSwapper saved = createSwapper();
+        saved.showNext();
+        final Parcelable state = saved.onSaveInstanceState();
+
+        final ViewSwapper[] animating = new ViewSwapper[ITERATIONS];
+        final ViewSwapper[] idle = new ViewSwapper[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            animating[i] = createSwapper();
+            animating[i].showNext();
+            animating[i].showNext();
+            idle[i] = createSwapper();
+        }
+
+        final long animatingNanos = restoreAll(animating, state);
+        final long idleNanos = restoreAll(idle, state);
+        Log.i(TAG, String.format("restore with swaps running: %d ns, without: %d ns",
+                animatingNanos / ITERATIONS, idleNanos / ITERATIONS));
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertRestored(animating[i]);
+            assertRestored(idle[i]);
+        }
+    }
+
+    private static long restoreAll(ViewSwapper[] swappers, Parcelable state) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < swappers.length; i++) {
+            swappers[i].onRestoreInstanceState(state);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The restored child has to be on screen in its final state right away,
+     * with nothing left to play.
+     */
+    private static void assertRestored(ViewSwapper swapper) {
+        assertEquals(1, swapper.getDisplayedChild());
+        final View shown = swapper.getChildAt(1);
+        assertEquals(View.VISIBLE, shown.getVisibility());
+        assertEquals(1f, shown.getAlpha(), EPSILON);
+        assertEquals(0f, shown.getTranslationX(), EPSILON);
+        assertEquals(View.GONE, swapper.getChildAt(0).getVisibility());
+        for (Animator animator : swapper.mCurrentAnimators.values()) {
+            assertFalse(animator.isRunning());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frozenkoi.oss.viewswappers;
+
+import java.util.Random;
+
+import android.animation.Animator;
+import android.animation.AnimatorSet;
+import android.animation.ObjectAnimator;
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+/**
+ * Plays a long, fuzzed but seeded sequence of adds, removes, swaps and resets on
+ * the swappers while their animations are still running, and checks with
+ * {@link ViewAnimatorViaProperties#verifyRetention()} after every step that
+ * nothing is retained or out of range. Steps run on the UI thread with short
+ * pauses in between, so animations get superseded at varying points.
+ */
+public class RetentionSoakTest extends InstrumentationTestCase {
+    private static final long SEED = 0x5eed;
+    private static final int STEPS = 400;
+    private static final int MAX_CHILDREN = 5;
+    private static final long DURATION = 120;
+    private static final int MAX_PAUSE = 40;
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 100;
+
+    private Context mContext;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mRandom = new Random(SEED);
+        ViewAnimatorViaProperties.setRetentionTrackingEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ViewAnimatorViaProperties.setRetentionTrackingEnabled(false);
+        super.tearDown();
+    }
+
+    private static Animator createInAnimator() {
+        final AnimatorSet set = new AnimatorSet();
+        set.playTogether(ObjectAnimator.ofFloat(null, "alpha", 0f, 1f),
+                ObjectAnimator.ofFloat(null, "translationX", 50f, 0f));
+        set.setDuration(DURATION);
+        return set;
+    }
+
+    private static Animator createOutAnimator() {
+        return ObjectAnimator.ofFloat(null, "alpha", 1f, 0f).setDuration(DURATION);
+    }
+
+    private ViewAnimatorViaProperties createAnimator() {
+        final ViewAnimatorViaProperties animator = new ViewAnimatorViaProperties(mContext);
+        animator.setInAnimation(createInAnimator());
+        animator.setOutAnimation(createOutAnimator());
+        return animator;
+    }
+
+    private ViewSwapper createSwapper() {
+        final ViewSwapper swapper = new ViewSwapper(mContext);
+        swapper.setInAnimation(createInAnimator());
+        swapper.setOutAnimation(createOutAnimator());
+        swapper.setSnapshotOutTransition(true);
+        return swapper;
+    }
+
+    public void testAnimatorSoak() throws Throwable {
+        final ViewAnimatorViaProperties animator = createAnimator();
+        for (int step = 0; step < STEPS; step++) {
+            final int op = mRandom.nextInt(8);
+            final int a = mRandom.nextInt(MAX_CHILDREN + 1);
+            final int b = mRandom.nextInt(MAX_CHILDREN + 1);
+            runStep(animator, step, new Runnable() {
+                @Override
+                public void run() {
+                    final int count = animator.getChildCount();
+                    switch (op) {
+                        case 0:
+                            if (count < MAX_CHILDREN) {
+                                animator.addView(new View(mContext), Math.min(a, count));
+                            }
+                            break;
+                        case 1:
+                            if (count > 0) {
+                                animator.removeViewAt(a % count);
+                            }
+                            break;
+                        case 2:
+                            if (count > 0) {
+                                final int start = a % count;
+                                animator.removeViews(start, 1 + b % (count - start));
+                            }
+                            break;
+                        case 3:
+                            animator.showNext();
+                            break;
+                        case 4:
+                            animator.showPrevious();
+                            break;
+                        case 5:
+                            animator.setDisplayedChild(a);
+                            break;
+                        case 6:
+                            instantSwap(animator, a);
+                            break;
+                        case 7:
+                            shortenedSwap(animator, a);
+                            break;
+                    }
+                }
+            });
+        }
+        drain(animator);
+    }
+
+    public void testSwapperSoak() throws Throwable {
+        final ViewSwapper swapper = createSwapper();
+        for (int step = 0; step < STEPS; step++) {
+            final int op = mRandom.nextInt(9);
+            final int a = mRandom.nextInt(2);
+            final boolean snapshot = mRandom.nextInt(4) != 0;
+            runStep(swapper, step, new Runnable() {
+                @Override
+                public void run() {
+                    final int count = swapper.getChildCount();
+                    swapper.setSnapshotOutTransition(snapshot);
+                    switch (op) {
+                        case 0:
+                        case 1:
+                            if (count < 2) {
+                                swapper.addView(new View(mContext), Math.min(a, count));
+                            }
+                            break;
+                        case 2:
+                            if (count > 0) {
+                                swapper.removeViewAt(a % count);
+                            }
+                            break;
+                        case 3:
+                            if (count > 0) {
+                                swapper.removeViews(0, count);
+                            }
+                            break;
+                        case 4:
+                        case 5:
+                            swapper.showNext();
+                            break;
+                        case 6:
+                            swapper.reset();
+                            break;
+                        case 7:
+                            instantSwap(swapper, swapper.getDisplayedChild() + 1);
+                            break;
+                        case 8:
+                            shortenedSwap(swapper, swapper.getDisplayedChild() + 1);
+                            break;
+                    }
+                }
+            });
+        }
+        drain(swapper);
+    }
+
+    /**
+     * Does what a swap the {@link SwapAdmissionController} applies instantly
+     * does, without depending on frame timings.
+     */
+    private static void instantSwap(ViewAnimatorViaProperties animator, int whichChild) {
+        final int count = animator.getChildCount();
+        if (count == 0) {
+            return;
+        }
+        animator.mWhichChild = whichChild % count;
+        animator.showOnly(animator.mWhichChild, false);
+        for (int i = 0; i < count; i++) {
+            assertEquals("visibility of child " + i + " after an instant swap",
+                    i == animator.mWhichChild ? View.VISIBLE : View.GONE,
+                    animator.getChildAt(i).getVisibility());
+        }
+        //nothing keeps playing, a ViewSwapper's snapshot included
+        assertEquals(0, animator.getRetentionTracker().getLiveAnimatorCount());
+    }
+
+    /**
+     * Does what a swap the {@link SwapAdmissionController} shortens does.
+     */
+    private static void shortenedSwap(ViewAnimatorViaProperties animator, int whichChild) {
+        final int count = animator.getChildCount();
+        if (count == 0) {
+            return;
+        }
+        animator.mWhichChild = whichChild % count;
+        animator.showOnly(animator.mWhichChild, true, 0.5f);
+    }
+
+    private void runStep(final ViewAnimatorViaProperties animator, int step,
+            final Runnable action) throws Throwable {
+        runOnMainSync("step " + step + " (seed " + SEED + ")", new Runnable() {
+            @Override
+            public void run() {
+                action.run();
+                //children need a size for the snapshot to be taken
+                animator.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+                animator.layout(0, 0, WIDTH, HEIGHT);
+                animator.verifyRetention();
+            }
+        });
+        Thread.sleep(mRandom.nextInt(MAX_PAUSE));
+    }
+
+    /**
+     * Waits for every animation to finish and checks nothing is left counted.
+     */
+    private void drain(final ViewAnimatorViaProperties animator) throws Throwable {
+        Thread.sleep(DURATION * 3);
+        runOnMainSync("drain", new Runnable() {
+            @Override
+            public void run() {
+                animator.verifyRetention();
+                assertEquals(0, animator.getRetentionTracker().getLiveAnimatorCount());
+                animator.removeAllViews();
+                animator.verifyRetention();
+                assertEquals(0, animator.getRetentionTracker().getTrackedChildCount());
+            }
+        });
+    }
+
+    /**
+     * Runs the action on the UI thread and rethrows what it threw on this one,
+     * so a failure fails the test instead of crashing the instrumentation.
+     */
+    private void runOnMainSync(String what, final Runnable action) throws Throwable {
+        final Throwable[] failure = new Throwable[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    action.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw new AssertionError(what + ": " + failure[0]).initCause(failure[0]);
+        }
+    }
+}